@@ -0,0 +1,61 @@
+/*
+ * Copyright (c) 2020 comp500
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package link.infra.bundle.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.security.MessageDigest;
+
+/**
+ * Updates a digest with every byte read through the wrapped channel, so data can be hashed as it is copied.
+ */
+final class DigestingChannel implements ReadableByteChannel {
+	private final ReadableByteChannel delegate;
+	private final MessageDigest digest;
+
+	DigestingChannel(ReadableByteChannel delegate, MessageDigest digest) {
+		this.delegate = delegate;
+		this.digest = digest;
+	}
+
+	@Override
+	public int read(ByteBuffer dst) throws IOException {
+		int start = dst.position();
+		int read = delegate.read(dst);
+
+		if (read > 0) {
+			ByteBuffer readData = dst.duplicate();
+			readData.position(start);
+			readData.limit(start + read);
+			digest.update(readData);
+		}
+
+		return read;
+	}
+
+	@Override
+	public boolean isOpen() {
+		return delegate.isOpen();
+	}
+
+	@Override
+	public void close() throws IOException {
+		delegate.close();
+	}
+}
@@ -0,0 +1,369 @@
+/*
+ * Copyright (c) 2020 comp500
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package link.infra.bundle.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.CodeSigner;
+import java.security.CodeSource;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+
+/**
+ * The classloader used to launch the game, over the server jar and the launcher jar. Rather than searching every jar
+ * in turn like {@link URLClassLoader}, it builds an index of which jars contain each directory, so lookups go
+ * straight to the jar that has the class or resource (or fail immediately if none do). The index can be persisted,
+ * so it only needs to be built when the jars change.
+ *
+ * <p>It still extends {@link URLClassLoader} so that code inspecting the classloader for its URLs keeps working.
+ */
+final class GameClassLoader extends URLClassLoader {
+	static {
+		ClassLoader.registerAsParallelCapable();
+	}
+
+	private static final int INDEX_FORMAT_VERSION = 1;
+
+	private final JarFile[] jars;
+	private final URL[] jarUrls;
+	private final Manifest[] manifests;
+	private final CodeSource[] unsignedCodeSources;
+	// Maps each directory, including the trailing slash, to a bitmask of the jars with entries in it
+	private final Map<String, Integer> index;
+
+	final LongAdder classLookups = new LongAdder();
+	final LongAdder classesDefined = new LongAdder();
+	final LongAdder resourceLookups = new LongAdder();
+	// Lookups rejected without opening a jar, as no jar has the directory
+	final LongAdder indexMisses = new LongAdder();
+	// Jars the index pointed to that didn't have the entry
+	final LongAdder jarMisses = new LongAdder();
+
+	/**
+	 * Opens the given jars, reading the index from indexFile if it was written for the same key, otherwise building
+	 * it from the jars and saving it to indexFile. indexFile can be null to always build the index.
+	 */
+	GameClassLoader(Path[] jarPaths, ClassLoader parent, Path indexFile, String indexKey) throws IOException {
+		super(toUrls(jarPaths), parent);
+
+		if (jarPaths.length > Integer.SIZE - 1) {
+			throw new IllegalArgumentException("Too many jars for the game classloader");
+		}
+
+		jars = new JarFile[jarPaths.length];
+		jarUrls = getURLs();
+		manifests = new Manifest[jarPaths.length];
+		unsignedCodeSources = new CodeSource[jarPaths.length];
+
+		try {
+			for (int i = 0; i < jarPaths.length; i++) {
+				jars[i] = new JarFile(jarPaths[i].toFile());
+				manifests[i] = jars[i].getManifest();
+				unsignedCodeSources[i] = new CodeSource(jarUrls[i], (CodeSigner[]) null);
+			}
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+
+		Map<String, Integer> loadedIndex = indexFile == null ? null : readIndex(indexFile, indexKey);
+
+		if (loadedIndex == null) {
+			loadedIndex = buildIndex(jars);
+
+			if (indexFile != null) {
+				writeIndex(indexFile, indexKey, loadedIndex);
+			}
+		}
+
+		index = loadedIndex;
+	}
+
+	private static URL[] toUrls(Path[] paths) throws MalformedURLException {
+		URL[] urls = new URL[paths.length];
+
+		for (int i = 0; i < paths.length; i++) {
+			urls[i] = paths[i].toUri().toURL();
+		}
+
+		return urls;
+	}
+
+	private static String directoryOf(String name) {
+		return name.substring(0, name.lastIndexOf('/') + 1);
+	}
+
+	private static Map<String, Integer> buildIndex(JarFile[] jars) {
+		Map<String, Integer> index = new HashMap<>();
+
+		for (int i = 0; i < jars.length; i++) {
+			int bit = 1 << i;
+			Enumeration<JarEntry> entries = jars[i].entries();
+
+			while (entries.hasMoreElements()) {
+				index.merge(directoryOf(entries.nextElement().getName()), bit, (a, b) -> a | b);
+			}
+		}
+
+		return index;
+	}
+
+	private static Map<String, Integer> readIndex(Path indexFile, String indexKey) {
+		try (DataInputStream in = new DataInputStream(Files.newInputStream(indexFile))) {
+			if (in.readInt() != INDEX_FORMAT_VERSION || !in.readUTF().equals(indexKey)) {
+				return null;
+			}
+
+			int size = in.readInt();
+			Map<String, Integer> index = new HashMap<>(size * 4 / 3 + 1);
+
+			for (int i = 0; i < size; i++) {
+				index.put(in.readUTF(), in.readInt());
+			}
+
+			return index;
+		} catch (NoSuchFileException e) {
+			return null;
+		} catch (IOException e) {
+			System.out.println("Ignoring unreadable classloader index " + indexFile);
+			return null;
+		}
+	}
+
+	private static void writeIndex(Path indexFile, String indexKey, Map<String, Integer> index) {
+		try {
+			Path tempFile = Files.createTempFile(indexFile.toAbsolutePath().getParent(), indexFile.getFileName().toString(), ".tmp");
+
+			try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(tempFile))) {
+				out.writeInt(INDEX_FORMAT_VERSION);
+				out.writeUTF(indexKey);
+				out.writeInt(index.size());
+
+				for (Map.Entry<String, Integer> entry : index.entrySet()) {
+					out.writeUTF(entry.getKey());
+					out.writeInt(entry.getValue());
+				}
+			}
+
+			try {
+				Files.move(tempFile, indexFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tempFile, indexFile, StandardCopyOption.REPLACE_EXISTING);
+			} finally {
+				Files.deleteIfExists(tempFile);
+			}
+		} catch (IOException e) {
+			System.err.println("Failed to save classloader index to " + indexFile + ":");
+			e.printStackTrace();
+		}
+	}
+
+	private int jarsContaining(String name) {
+		Integer mask = index.get(directoryOf(name));
+
+		if (mask == null) {
+			indexMisses.increment();
+			return 0;
+		}
+
+		return mask;
+	}
+
+	@Override
+	protected Class<?> findClass(String name) throws ClassNotFoundException {
+		classLookups.increment();
+		String path = name.replace('.', '/').concat(".class");
+		int mask = jarsContaining(path);
+
+		for (int i = 0; mask != 0; i++, mask >>>= 1) {
+			if ((mask & 1) == 0) continue;
+			JarEntry entry = jars[i].getJarEntry(path);
+
+			if (entry == null) {
+				jarMisses.increment();
+				continue;
+			}
+
+			try {
+				return defineClass(name, i, entry);
+			} catch (IOException e) {
+				throw new ClassNotFoundException(name, e);
+			}
+		}
+
+		throw new ClassNotFoundException(name);
+	}
+
+	private Class<?> defineClass(String name, int jarIndex, JarEntry entry) throws IOException {
+		byte[] bytes;
+
+		try (InputStream is = jars[jarIndex].getInputStream(entry)) {
+			bytes = readFully(is, entry.getSize());
+		}
+
+		int lastDot = name.lastIndexOf('.');
+
+		if (lastDot != -1) {
+			definePackageIfNeeded(name.substring(0, lastDot), jarIndex);
+		}
+
+		// Signers are only available once the entry has been read
+		CodeSigner[] signers = entry.getCodeSigners();
+		CodeSource codeSource = signers == null ? unsignedCodeSources[jarIndex] : new CodeSource(jarUrls[jarIndex], signers);
+		Class<?> clazz = defineClass(name, bytes, 0, bytes.length, codeSource);
+		classesDefined.increment();
+		return clazz;
+	}
+
+	@SuppressWarnings("deprecation")
+	private void definePackageIfNeeded(String packageName, int jarIndex) {
+		if (getPackage(packageName) != null) return;
+
+		try {
+			if (manifests[jarIndex] != null) {
+				definePackage(packageName, manifests[jarIndex], jarUrls[jarIndex]);
+			} else {
+				definePackage(packageName, null, null, null, null, null, null, null);
+			}
+		} catch (IllegalArgumentException e) {
+			// Defined concurrently by another thread
+		}
+	}
+
+	static byte[] readFully(InputStream is, long size) throws IOException {
+		if (size < 0) {
+			// Unknown size - read until the end
+			byte[] buf = new byte[8192];
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			int read;
+
+			while ((read = is.read(buf)) != -1) {
+				out.write(buf, 0, read);
+			}
+
+			return out.toByteArray();
+		}
+
+		byte[] bytes = new byte[(int) size];
+		int offset = 0;
+
+		while (offset < bytes.length) {
+			int read = is.read(bytes, offset, bytes.length - offset);
+			if (read == -1) throw new IOException("Unexpected end of jar entry");
+			offset += read;
+		}
+
+		return bytes;
+	}
+
+	private URL entryUrl(int jarIndex, String name) {
+		try {
+			return new URL("jar:" + jarUrls[jarIndex] + "!/" + name);
+		} catch (MalformedURLException e) {
+			return null;
+		}
+	}
+
+	@Override
+	public URL findResource(String name) {
+		resourceLookups.increment();
+		int mask = jarsContaining(name);
+
+		for (int i = 0; mask != 0; i++, mask >>>= 1) {
+			if ((mask & 1) == 0) continue;
+
+			if (jars[i].getEntry(name) != null) {
+				return entryUrl(i, name);
+			}
+
+			jarMisses.increment();
+		}
+
+		return null;
+	}
+
+	@Override
+	public Enumeration<URL> findResources(String name) {
+		resourceLookups.increment();
+		int mask = jarsContaining(name);
+		List<URL> urls = new ArrayList<>();
+
+		for (int i = 0; mask != 0; i++, mask >>>= 1) {
+			if ((mask & 1) == 0) continue;
+
+			if (jars[i].getEntry(name) != null) {
+				URL url = entryUrl(i, name);
+
+				if (url != null) {
+					urls.add(url);
+				}
+			} else {
+				jarMisses.increment();
+			}
+		}
+
+		return Collections.enumeration(urls);
+	}
+
+	String describeStats() {
+		return "Game classloader: " + classesDefined.sum() + " classes defined from " + classLookups.sum()
+			+ " lookups, " + resourceLookups.sum() + " resource lookups, " + indexMisses.sum()
+			+ " lookups rejected by the index, " + jarMisses.sum() + " jar misses";
+	}
+
+	@Override
+	public void close() throws IOException {
+		IOException failure = null;
+
+		for (JarFile jar : jars) {
+			if (jar == null) continue;
+
+			try {
+				jar.close();
+			} catch (IOException e) {
+				failure = e;
+			}
+		}
+
+		super.close();
+
+		if (failure != null) {
+			throw failure;
+		}
+	}
+}
@@ -0,0 +1,30 @@
+/*
+ * Copyright (c) 2020 comp500
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package link.infra.bundle.server;
+
+import java.io.IOException;
+
+class InvalidHashException extends IOException {
+	public final String expectedHash;
+	public final String hashFound;
+
+	InvalidHashException(String expectedHash, String hashFound) {
+		this.expectedHash = expectedHash;
+		this.hashFound = hashFound;
+	}
+}
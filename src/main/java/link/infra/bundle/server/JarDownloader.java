@@ -0,0 +1,488 @@
+/*
+ * Copyright (c) 2020 comp500
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package link.infra.bundle.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Downloads the server jar into a temporary file next to it. The temporary file is only moved into place once its
+ * hash matches, so the jar at the final path is never partially written or corrupt.
+ *
+ * <p>If the server supports range requests, the jar is split into ranges which are fetched over several concurrent
+ * connections. Progress is kept between calls to {@link #download()}, so a retry only fetches the ranges (or parts of
+ * ranges) that haven't been received yet. Otherwise, the jar is fetched as a single stream and hashed as it is
+ * written.
+ *
+ * <p>When several mirrors are configured, they are all probed concurrently and the fastest to respond is used. If a
+ * mirror fails part way through, the download carries on from the next mirror within the same try.
+ */
+final class JarDownloader {
+	private static final String USER_AGENT = "bundle-server-launcher/" + Main.VERSION;
+	private static final long TRANSFER_CHUNK_SIZE = 1024 * 1024;
+	private static final long RANGE_SIZE = 4 * 1024 * 1024;
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final Pattern CONTENT_RANGE = Pattern.compile("bytes \\d+-\\d+/(\\d+)");
+
+	private final List<Mirror> mirrors;
+	private final Path serverJar;
+	private final byte[] serverJarHash;
+	private final int connections;
+	private final int timeoutMillis;
+
+	private boolean probed = false;
+	// Index into mirrors of the mirror new requests should go to
+	private final AtomicInteger currentMirror = new AtomicInteger();
+	// Null if range requests aren't supported
+	private List<Range> ranges = null;
+	private long totalLength;
+
+	JarDownloader(List<URL> mirrorUrls, Path serverJar, byte[] serverJarHash, int connections, int timeoutMillis) {
+		this.mirrors = new ArrayList<>();
+
+		for (URL url : mirrorUrls) {
+			mirrors.add(new Mirror(url));
+		}
+
+		this.serverJar = serverJar;
+		this.serverJarHash = serverJarHash;
+		this.connections = connections;
+		this.timeoutMillis = timeoutMillis;
+	}
+
+	private static final class Range {
+		final long start;
+		final long end;
+		// Bytes received so far, from start
+		volatile long received = 0;
+
+		Range(long start, long end) {
+			this.start = start;
+			this.end = end;
+		}
+
+		boolean isComplete() {
+			return start + received >= end;
+		}
+	}
+
+	static Path tempPathFor(Path serverJar) {
+		return serverJar.resolveSibling(serverJar.getFileName() + ".part");
+	}
+
+	private URLConnection openConnection(URL url) throws IOException {
+		URLConnection conn = url.openConnection();
+		conn.setRequestProperty("User-Agent", USER_AGENT);
+		conn.setRequestProperty("Accept", "application/octet-stream");
+		conn.setConnectTimeout(timeoutMillis);
+		conn.setReadTimeout(timeoutMillis);
+		return conn;
+	}
+
+	/**
+	 * Opens a connection requesting the given byte range (end exclusive), returning null if the server ignored
+	 * the range.
+	 */
+	private HttpURLConnection openRange(URL url, long start, long end) throws IOException {
+		URLConnection conn = openConnection(url);
+		if (!(conn instanceof HttpURLConnection)) return null;
+		HttpURLConnection httpConn = (HttpURLConnection) conn;
+		httpConn.setRequestProperty("Range", "bytes=" + start + "-" + (end - 1));
+
+		if (httpConn.getResponseCode() != HttpURLConnection.HTTP_PARTIAL) {
+			httpConn.disconnect();
+			return null;
+		}
+
+		return httpConn;
+	}
+
+	private void probe(Mirror mirror) {
+		long start = System.nanoTime();
+
+		try {
+			HttpURLConnection conn = openRange(mirror.url, 0, 1);
+			mirror.latencyMillis = (System.nanoTime() - start) / 1_000_000;
+			if (conn == null) return;
+
+			try {
+				String contentRange = conn.getHeaderField("Content-Range");
+				Matcher matcher = contentRange == null ? null : CONTENT_RANGE.matcher(contentRange);
+
+				if (matcher != null && matcher.matches()) {
+					mirror.reportedLength = Long.parseLong(matcher.group(1));
+					mirror.supportsRanges = true;
+				}
+			} finally {
+				conn.disconnect();
+			}
+		} catch (IOException e) {
+			mirror.latencyMillis = -1;
+			mirror.recordFailure();
+			System.out.println("Mirror " + mirror.url + " did not respond: " + e);
+		}
+	}
+
+	/**
+	 * Probes every mirror concurrently, ordering them by how quickly they responded, and splits the jar into ranges
+	 * if the fastest mirror supports range requests.
+	 */
+	private void probe() throws IOException {
+		probed = true;
+
+		if (mirrors.size() == 1) {
+			if (connections > 1) {
+				probe(mirrors.get(0));
+			}
+		} else {
+			ExecutorService executor = newExecutor("probe", mirrors.size());
+
+			try {
+				List<Future<?>> futures = new ArrayList<>();
+
+				for (Mirror mirror : mirrors) {
+					futures.add(executor.submit(() -> probe(mirror)));
+				}
+
+				for (Future<?> future : futures) {
+					future.get();
+				}
+			} catch (ExecutionException e) {
+				throw new IOException(e.getCause());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while probing mirrors", e);
+			} finally {
+				executor.shutdownNow();
+			}
+
+			// Responding mirrors first, fastest first; the sort is stable so configured order breaks ties
+			mirrors.sort(Comparator.comparingLong(mirror -> mirror.latencyMillis < 0 ? Long.MAX_VALUE : mirror.latencyMillis));
+			currentMirror.set(0);
+			System.out.println("Using mirror " + mirrors.get(0).url);
+		}
+
+		Mirror best = mirrors.get(0);
+		if (connections <= 1 || !best.supportsRanges) return;
+		totalLength = best.reportedLength;
+		ranges = new ArrayList<>();
+
+		for (long start = 0; start < totalLength; start += RANGE_SIZE) {
+			ranges.add(new Range(start, Math.min(start + RANGE_SIZE, totalLength)));
+		}
+
+		// Clear any leftover data from a previous run, as there is no record of which parts of it are valid
+		Files.deleteIfExists(tempPathFor(serverJar));
+	}
+
+	private static ExecutorService newExecutor(String name, int threads) {
+		AtomicInteger threadCount = new AtomicInteger();
+		return Executors.newFixedThreadPool(threads, r -> {
+			Thread thread = new Thread(r, "bundle-server-launcher " + name + " " + threadCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * Moves new requests on to the mirror after the given one, if they are still going to it.
+	 */
+	private void failOver(int mirrorIndex) {
+		Mirror failed = mirrors.get(mirrorIndex);
+		failed.recordFailure();
+		int next = (mirrorIndex + 1) % mirrors.size();
+
+		if (mirrors.size() > 1 && currentMirror.compareAndSet(mirrorIndex, next)) {
+			System.out.println("Mirror " + failed.url + " failed, switching to " + mirrors.get(next).url);
+		}
+	}
+
+	void printMirrorStats() {
+		for (Mirror mirror : mirrors) {
+			System.out.println("    " + mirror.describeStats());
+		}
+	}
+
+	void download() throws IOException {
+		Files.createDirectories(serverJar.toAbsolutePath().getParent());
+
+		if (!probed) {
+			probe();
+		}
+
+		try {
+			if (ranges == null) {
+				downloadStream();
+			} else {
+				downloadRanges();
+			}
+		} finally {
+			if (mirrors.size() > 1) {
+				System.out.println("Mirror statistics:");
+				printMirrorStats();
+			}
+		}
+	}
+
+	/**
+	 * Downloads the jar as a single stream, moving on to the next mirror if one fails or serves a bad jar.
+	 */
+	private void downloadStream() throws IOException {
+		IOException failure = null;
+
+		for (int i = 0; i < mirrors.size(); i++) {
+			int mirrorIndex = currentMirror.get();
+
+			try {
+				downloadStream(mirrors.get(mirrorIndex));
+				return;
+			} catch (IOException e) {
+				failOver(mirrorIndex);
+
+				if (failure == null) {
+					failure = e;
+				} else {
+					failure.addSuppressed(e);
+				}
+			}
+		}
+
+		throw failure;
+	}
+
+	private void downloadStream(Mirror mirror) throws IOException {
+		Path tempJar = tempPathFor(serverJar);
+		URLConnection conn = openConnection(mirror.url);
+		MessageDigest digest = JarVerifier.newDigest();
+		long startTime = System.nanoTime();
+		long position = 0;
+
+		try (InputStream in = conn.getInputStream();
+			ReadableByteChannel source = new DigestingChannel(Channels.newChannel(in), digest);
+			FileChannel dest = FileChannel.open(tempJar, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			long expectedLength = conn.getContentLengthLong();
+
+			if (expectedLength > 0) {
+				// Extend the file to its final size up front
+				dest.write(ByteBuffer.allocate(1), expectedLength - 1);
+			}
+
+			long transferred;
+
+			while ((transferred = dest.transferFrom(source, position, TRANSFER_CHUNK_SIZE)) > 0) {
+				position += transferred;
+			}
+
+			if (expectedLength > 0 && position != expectedLength) {
+				throw new IOException("Download ended early: received " + position + " of " + expectedLength + " bytes");
+			}
+
+			dest.truncate(position);
+			dest.force(true);
+		} catch (IOException e) {
+			Files.deleteIfExists(tempJar);
+			throw e;
+		} finally {
+			mirror.recordTransfer(position, System.nanoTime() - startTime);
+		}
+
+		commit(tempJar, serverJar, serverJarHash, digest.digest());
+	}
+
+	private void downloadRanges() throws IOException {
+		Path tempJar = tempPathFor(serverJar);
+		int rangeCount = ranges.size();
+		List<Range> remaining = new ArrayList<>();
+
+		for (Range range : ranges) {
+			if (!range.isComplete()) {
+				remaining.add(range);
+			}
+		}
+
+		if (remaining.size() < rangeCount) {
+			System.out.println("Resuming download, " + remaining.size() + " of " + rangeCount + " ranges remaining");
+		}
+
+		ExecutorService executor = newExecutor("download", Math.min(connections, remaining.size()));
+
+		IOException failure = null;
+		int failedRanges = 0;
+
+		try (FileChannel dest = FileChannel.open(tempJar, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+			if (dest.size() != totalLength) {
+				dest.truncate(totalLength);
+				// Extend the file to its final size up front
+				dest.write(ByteBuffer.allocate(1), totalLength - 1);
+			}
+
+			List<Future<?>> futures = new ArrayList<>();
+
+			for (Range range : remaining) {
+				futures.add(executor.submit(() -> {
+					fetchRange(range, dest);
+					return null;
+				}));
+			}
+
+			for (Future<?> future : futures) {
+				try {
+					future.get();
+				} catch (ExecutionException e) {
+					failedRanges++;
+
+					if (failure == null) {
+						failure = e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+					} else {
+						failure.addSuppressed(e.getCause());
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted while downloading", e);
+				}
+			}
+
+			dest.force(true);
+		} finally {
+			executor.shutdownNow();
+		}
+
+		if (failure != null) {
+			IOException e = new IOException(failedRanges + " of " + rangeCount + " ranges failed to download");
+			e.addSuppressed(failure);
+			throw e;
+		}
+
+		try {
+			commit(tempJar, serverJar, serverJarHash, JarVerifier.hash(tempJar));
+		} catch (InvalidHashException e) {
+			// The received data is bad, so start again from scratch (from the next mirror, as it may be the culprit)
+			failOver(currentMirror.get());
+			probed = false;
+			ranges = null;
+
+			throw e;
+		}
+	}
+
+	/**
+	 * Fetches the rest of a range, moving on to the next mirror if one fails.
+	 */
+	private void fetchRange(Range range, FileChannel dest) throws IOException {
+		IOException failure = null;
+
+		for (int i = 0; i < mirrors.size() && !range.isComplete(); i++) {
+			int mirrorIndex = currentMirror.get();
+
+			try {
+				fetchRange(range, dest, mirrors.get(mirrorIndex));
+			} catch (IOException e) {
+				failOver(mirrorIndex);
+
+				if (failure == null) {
+					failure = e;
+				} else {
+					failure.addSuppressed(e);
+				}
+			}
+		}
+
+		if (!range.isComplete()) {
+			throw failure;
+		}
+	}
+
+	private void fetchRange(Range range, FileChannel dest, Mirror mirror) throws IOException {
+		HttpURLConnection conn = openRange(mirror.url, range.start + range.received, range.end);
+
+		if (conn == null) {
+			throw new IOException("Mirror " + mirror.url + " did not return a partial response for a range request");
+		}
+
+		long startTime = System.nanoTime();
+		long startReceived = range.received;
+
+		try (InputStream in = conn.getInputStream(); ReadableByteChannel source = Channels.newChannel(in)) {
+			ByteBuffer buf = ByteBuffer.allocate(BUFFER_SIZE);
+
+			while (!range.isComplete()) {
+				buf.clear();
+				buf.limit((int) Math.min(BUFFER_SIZE, range.end - range.start - range.received));
+				if (source.read(buf) == -1) break;
+				buf.flip();
+
+				while (buf.hasRemaining()) {
+					range.received += dest.write(buf, range.start + range.received);
+				}
+			}
+		} finally {
+			conn.disconnect();
+			mirror.recordTransfer(range.received - startReceived, System.nanoTime() - startTime);
+		}
+
+		if (!range.isComplete()) {
+			throw new IOException("Range " + range.start + "-" + range.end + " from " + mirror.url + " ended early");
+		}
+	}
+
+	/**
+	 * Moves a fully written temporary jar into place if its hash matches, and stamps it as verified.
+	 */
+	static void commit(Path tempJar, Path serverJar, byte[] serverJarHash, byte[] foundHash) throws IOException {
+		if (!Arrays.equals(foundHash, serverJarHash)) {
+			Files.deleteIfExists(tempJar);
+			throw new InvalidHashException(Main.bytesToHex(serverJarHash), Main.bytesToHex(foundHash));
+		}
+
+		VerificationStamp.delete(serverJar);
+
+		try {
+			Files.move(tempJar, serverJar, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(tempJar, serverJar, StandardCopyOption.REPLACE_EXISTING);
+		}
+
+		VerificationStamp.of(Files.readAttributes(serverJar, BasicFileAttributes.class), foundHash).write(serverJar);
+	}
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2020 comp500
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package link.infra.bundle.server;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * An exclusive lock on a file next to a jar, held while the jar is being checked or written so that launchers in
+ * other processes sharing the jar don't download it at the same time.
+ */
+final class JarLock implements AutoCloseable {
+	private static final long POLL_INTERVAL_MILLIS = 250;
+
+	private final FileChannel channel;
+	private final FileLock lock;
+	private final boolean waited;
+
+	private JarLock(FileChannel channel, FileLock lock, boolean waited) {
+		this.channel = channel;
+		this.lock = lock;
+		this.waited = waited;
+	}
+
+	static Path pathFor(Path jar) {
+		return jar.resolveSibling(jar.getFileName() + ".lock");
+	}
+
+	/**
+	 * Acquires the lock for a jar, waiting for up to the given timeout if another process holds it.
+	 */
+	static JarLock acquire(Path jar, long timeoutMillis) throws IOException {
+		Path lockPath = pathFor(jar);
+		Files.createDirectories(lockPath.toAbsolutePath().getParent());
+		// The lock file is never deleted, as another process could be about to lock it
+		FileChannel channel = FileChannel.open(lockPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		boolean waited = false;
+
+		try {
+			while (true) {
+				FileLock lock;
+
+				try {
+					lock = channel.tryLock();
+				} catch (OverlappingFileLockException e) {
+					// Held by another thread in this JVM
+					lock = null;
+				}
+
+				if (lock != null) {
+					return new JarLock(channel, lock, waited);
+				}
+
+				if (!waited) {
+					System.out.println("Waiting for another launcher to finish with " + jar + "...");
+					waited = true;
+				}
+
+				if (System.currentTimeMillis() >= deadline) {
+					throw new IOException("Timed out waiting for lock on " + lockPath);
+				}
+
+				try {
+					Thread.sleep(POLL_INTERVAL_MILLIS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted while waiting for lock on " + lockPath, e);
+				}
+			}
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Acquires the lock for a jar if no other process holds it, otherwise returns null.
+	 */
+	static JarLock tryAcquire(Path jar) throws IOException {
+		FileChannel channel = FileChannel.open(pathFor(jar), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+
+		try {
+			FileLock lock = channel.tryLock();
+
+			if (lock != null) {
+				return new JarLock(channel, lock, false);
+			}
+		} catch (OverlappingFileLockException e) {
+			// Held by another thread in this JVM
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+
+		channel.close();
+		return null;
+	}
+
+	/**
+	 * Whether another process held the lock when it was requested, in which case the jar may have changed.
+	 */
+	boolean hasWaited() {
+		return waited;
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			lock.release();
+		} finally {
+			channel.close();
+		}
+	}
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) 2020 comp500
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package link.infra.bundle.server;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A host-wide store of verified server jars, named by their SHA-1 hash, which can be shared by many server instances.
+ * Jars are hard linked from the store into each instance, so they are only downloaded once per host and share the
+ * same page cache. If the store is on a different file system to the instance, the jar is copied instead.
+ *
+ * <p>The store can be bounded in size, in which case the least recently used jars are evicted. Jars that are still
+ * linked into an instance are skipped, as deleting them wouldn't free any space.
+ */
+final class JarStore {
+	private static final String JAR_SUFFIX = ".jar";
+	private static final String USED_SUFFIX = ".used";
+
+	private final Path root;
+	// Maximum total size of jars in the store, in bytes, or 0 for no limit
+	private final long maxSize;
+
+	JarStore(Path root, long maxSize) throws IOException {
+		this.root = root;
+		this.maxSize = maxSize;
+		Files.createDirectories(root);
+	}
+
+	Path pathFor(byte[] hash) {
+		return root.resolve(Main.bytesToHex(hash).toLowerCase(Locale.ROOT) + JAR_SUFFIX);
+	}
+
+	private static Path usedMarkerFor(Path entry) {
+		return entry.resolveSibling(entry.getFileName() + USED_SUFFIX);
+	}
+
+	/**
+	 * Links the jar with the given hash from the store to the server jar path, returning false if the store
+	 * doesn't have a valid copy of it.
+	 */
+	boolean linkInto(byte[] hash, Path serverJar, boolean forceVerify) throws IOException {
+		Path entry = pathFor(hash);
+
+		try {
+			JarVerifier.verify(entry, hash, forceVerify);
+		} catch (NoSuchFileException e) {
+			return false;
+		} catch (InvalidHashException e) {
+			System.err.println("Removing corrupt jar " + entry + " from the jar store (expected " + e.expectedHash
+				+ ", found " + e.hashFound + ")");
+			delete(entry);
+			return false;
+		}
+
+		Files.createDirectories(serverJar.toAbsolutePath().getParent());
+		Path tempJar = JarDownloader.tempPathFor(serverJar);
+		Files.deleteIfExists(tempJar);
+
+		try {
+			Files.createLink(tempJar, entry);
+		} catch (IOException | UnsupportedOperationException e) {
+			Files.copy(entry, tempJar);
+		}
+
+		JarDownloader.commit(tempJar, serverJar, hash, hash);
+		markUsed(hash);
+		return true;
+	}
+
+	void markUsed(byte[] hash) {
+		Path marker = usedMarkerFor(pathFor(hash));
+
+		// The jar's own modification time isn't touched, as that would invalidate the verification stamps of every
+		// instance linked to it
+		try {
+			if (Files.exists(marker)) {
+				Files.setLastModifiedTime(marker, FileTime.fromMillis(System.currentTimeMillis()));
+			} else {
+				Files.createFile(marker);
+			}
+		} catch (IOException e) {
+			System.err.println("Failed to update last used time of " + marker + ": " + e);
+		}
+	}
+
+	private static void delete(Path entry) throws IOException {
+		// The lock file is left behind, as another launcher may be waiting on it
+		Files.deleteIfExists(entry);
+		Files.deleteIfExists(usedMarkerFor(entry));
+		VerificationStamp.delete(entry);
+	}
+
+	private static final class Entry {
+		final Path path;
+		final long size;
+		final long lastUsed;
+		final boolean linked;
+
+		Entry(Path path) throws IOException {
+			this.path = path;
+			this.size = Files.size(path);
+			Path marker = usedMarkerFor(path);
+			this.lastUsed = Files.getLastModifiedTime(Files.exists(marker) ? marker : path).toMillis();
+			this.linked = getLinkCount(path) > 1;
+		}
+
+		private static int getLinkCount(Path path) throws IOException {
+			try {
+				return (Integer) Files.getAttribute(path, "unix:nlink");
+			} catch (UnsupportedOperationException | IllegalArgumentException e) {
+				return 1;
+			}
+		}
+	}
+
+	/**
+	 * Deletes the least recently used jars not linked into any instance, until the store is within its size limit.
+	 */
+	void evict() {
+		if (maxSize <= 0) return;
+		List<Entry> entries = new ArrayList<>();
+		long totalSize = 0;
+
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(root, "*" + JAR_SUFFIX)) {
+			for (Path path : stream) {
+				Entry entry = new Entry(path);
+				entries.add(entry);
+				totalSize += entry.size;
+			}
+		} catch (IOException e) {
+			System.err.println("Failed to list jar store " + root + ": " + e);
+			return;
+		}
+
+		entries.sort(Comparator.comparingLong(entry -> entry.lastUsed));
+
+		for (Entry entry : entries) {
+			if (totalSize <= maxSize) break;
+			if (entry.linked) continue;
+
+			// Skip jars another launcher is currently downloading or linking
+			try (JarLock lock = JarLock.tryAcquire(entry.path)) {
+				if (lock == null) continue;
+				delete(entry.path);
+				totalSize -= entry.size;
+				System.out.println("Evicted " + entry.path.getFileName() + " from the jar store");
+			} catch (IOException e) {
+				System.err.println("Failed to evict " + entry.path + " from the jar store: " + e);
+			}
+		}
+	}
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2020 comp500
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package link.infra.bundle.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Verifies the server jar against its expected SHA-1 hash. The jar is streamed through a fixed-size direct buffer
+ * rather than being read onto the heap, and a {@link VerificationStamp} is kept so unchanged jars aren't re-hashed.
+ */
+final class JarVerifier {
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private JarVerifier() { }
+
+	static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException("Failed to verify Minecraft server JAR", e);
+		}
+	}
+
+	static byte[] hash(Path file) throws IOException {
+		MessageDigest digest = newDigest();
+		ByteBuffer buf = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			while (channel.read(buf) != -1) {
+				buf.flip();
+				digest.update(buf);
+				buf.clear();
+			}
+		}
+
+		return digest.digest();
+	}
+
+	/**
+	 * Verifies the jar, skipping the hash if the stamp shows it hasn't changed since it was last verified (unless
+	 * force is set). A new stamp is written after every successful full hash.
+	 */
+	static void verify(Path serverJar, byte[] serverJarHash, boolean force) throws IOException {
+		BasicFileAttributes attrs = Files.readAttributes(serverJar, BasicFileAttributes.class);
+
+		if (!force) {
+			VerificationStamp stamp = VerificationStamp.read(serverJar);
+			if (stamp != null && stamp.matches(attrs, serverJarHash)) return;
+		}
+
+		byte[] foundHash = hash(serverJar);
+
+		if (!Arrays.equals(foundHash, serverJarHash)) {
+			VerificationStamp.delete(serverJar);
+			throw new InvalidHashException(Main.bytesToHex(serverJarHash), Main.bytesToHex(foundHash));
+		}
+
+		// Attributes are from before hashing, so a jar modified while it was hashed fails the stamp next time
+		VerificationStamp.of(attrs, foundHash).write(serverJar);
+	}
+}
@@ -31,22 +31,24 @@ import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.net.URLClassLoader;
-import java.net.URLConnection;
 import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.StandardCopyOption;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Properties;
 
 public class Main {
-	private static final String VERSION = Main.class.getPackage().getImplementationVersion();
-	private static final String USER_AGENT = "bundle-server-launcher/" + VERSION;
+	static final String VERSION = Main.class.getPackage().getImplementationVersion();
 	private static final String DEF_SERVER_JAR_PATH = ".fabric/bundle-cache/server.jar";
 	private static final int MAX_DOWNLOAD_TRIES = 3;
+	private static final int DEF_DOWNLOAD_CONNECTIONS = 4;
+	private static final int DEF_DOWNLOAD_TIMEOUT_SECONDS = 30;
+	private static final int DEF_LOCK_TIMEOUT_SECONDS = 10 * 60;
 
 	public static void main(String[] args) {
 		Properties launcherProps = new Properties();
@@ -120,11 +122,25 @@ public class Main {
 		byte[] serverJarHash = hexToBytes(launcherProps.getProperty("serverJarHash"));
 		// Should work backwards-compatible with fabric-server-launcher
 		Path serverJar = Paths.get(launcherProps.getProperty("serverJar", DEF_SERVER_JAR_PATH));
+		// Ignore the verification stamp, and hash the jar even if it looks unchanged
+		boolean forceVerify = Boolean.parseBoolean(launcherProps.getProperty("verify.force", "false"));
+
+		JarStore store = null;
+		String storePath = launcherProps.getProperty("store.path");
+
+		if (storePath != null && !storePath.trim().isEmpty()) {
+			try {
+				store = new JarStore(Paths.get(storePath.trim()), getSizeProperty(launcherProps, "store.maxSize", 0));
+			} catch (IOException e) {
+				System.err.println("Failed to create jar store at " + storePath + ", it will not be used:");
+				e.printStackTrace();
+			}
+		}
 
 		boolean valid = false;
 
 		try {
-			verifyMinecraftJar(serverJar, serverJarHash);
+			verifyMinecraftJar(serverJar, serverJarHash, forceVerify);
 			valid = true;
 		} catch (InvalidHashException e) {
 			System.out.println("Minecraft jar has invalid hash (expected " + e.expectedHash + ", found " + e.hashFound
@@ -136,24 +152,31 @@ public class Main {
 		}
 
 		if (!valid) {
-			for (int i = 0; i < MAX_DOWNLOAD_TRIES; i++) {
-				try {
-					downloadMinecraftJar(serverJarUrl, serverJar);
-					verifyMinecraftJar(serverJar, serverJarHash);
-					valid = true;
-					System.out.println("Successfully downloaded Minecraft jar!");
-					break;
-				} catch (InvalidHashException e) {
-					System.err.println("Downloaded Minecraft jar has invalid hash (expected " + e.expectedHash + ", found "
-							+ e.hashFound + ")");
-				} catch (IOException e) {
-					System.err.println("Download failed!");
-					e.printStackTrace();
+			// With a store, jars are downloaded into the store then linked to the instance
+			Path downloadPath = store != null ? store.pathFor(serverJarHash) : serverJar;
+			long lockTimeout = getIntProperty(launcherProps, "download.lockTimeout", DEF_LOCK_TIMEOUT_SECONDS) * 1000L;
+
+			// Only one launcher downloads to a given path at a time, the others wait then use its result
+			try (JarLock lock = JarLock.acquire(downloadPath, lockTimeout)) {
+				if (store != null) {
+					valid = store.linkInto(serverJarHash, serverJar, forceVerify);
+
+					if (valid) {
+						System.out.println("Using Minecraft jar from the jar store");
+					}
+				} else if (lock.hasWaited()) {
+					valid = isMinecraftJarValid(serverJar, serverJarHash);
 				}
 
-				if (i < MAX_DOWNLOAD_TRIES - 1) {
-					System.out.println("Retrying... (" + (i + 1) + "/" + (MAX_DOWNLOAD_TRIES - 1) + ")");
+				if (!valid) {
+					JarDownloader downloader = new JarDownloader(getMirrorUrls(launcherProps, serverJarUrl), downloadPath, serverJarHash,
+						getIntProperty(launcherProps, "download.connections", DEF_DOWNLOAD_CONNECTIONS),
+						getIntProperty(launcherProps, "download.timeout", DEF_DOWNLOAD_TIMEOUT_SECONDS) * 1000);
+					valid = downloadMinecraftJar(downloader, store, serverJar, serverJarHash);
 				}
+			} catch (IOException e) {
+				System.err.println("Failed to get the Minecraft jar:");
+				e.printStackTrace();
 			}
 		}
 
@@ -166,6 +189,11 @@ public class Main {
 			System.exit(1);
 		}
 
+		if (store != null) {
+			store.markUsed(serverJarHash);
+			store.evict();
+		}
+
 		System.setProperty("fabric.gameJarPath", serverJar.toAbsolutePath().toString());
 
 		URL serverJarFileUrl = null;
@@ -178,12 +206,7 @@ public class Main {
 			System.exit(1);
 		}
 
-		// Set the parent classloader to the parent of the AppClassLoader
-		// This will be ExtClassLoader on Java 8 or older, PlatformClassLoader on Java 9 or newer - ensures extension classes will work
-		URLClassLoader gameLoader = new URLClassLoader(new URL[] {
-				serverJarFileUrl,
-				Main.class.getProtectionDomain().getCodeSource().getLocation()
-		}, ClassLoader.getSystemClassLoader().getParent());
+		URLClassLoader gameLoader = createGameLoader(launcherProps, serverJar, serverJarHash, serverJarFileUrl);
 
 		// Register the jimfs URL handler shim and FileSystemProvider shim
 		Handler.register(gameLoader);
@@ -206,45 +229,149 @@ public class Main {
 		}
 	}
 
-	private static class InvalidHashException extends IOException {
-		public final String expectedHash;
-		public final String hashFound;
+	private static URLClassLoader createGameLoader(Properties props, Path serverJar, byte[] serverJarHash, URL serverJarFileUrl) {
+		URL launcherJarUrl = Main.class.getProtectionDomain().getCodeSource().getLocation();
+		// Set the parent classloader to the parent of the AppClassLoader
+		// This will be ExtClassLoader on Java 8 or older, PlatformClassLoader on Java 9 or newer - ensures extension classes will work
+		ClassLoader parent = ClassLoader.getSystemClassLoader().getParent();
+
+		if (Boolean.parseBoolean(props.getProperty("classloader.indexed", "true"))) {
+			try {
+				Path launcherJar = Paths.get(launcherJarUrl.toURI());
+
+				// The index only supports jars, not directories of classes
+				if (Files.isRegularFile(launcherJar)) {
+					Path indexFile = null;
+
+					if (Boolean.parseBoolean(props.getProperty("classloader.persistIndex", "false"))) {
+						indexFile = serverJar.resolveSibling(serverJar.getFileName() + ".index");
+					}
 
-		InvalidHashException(String expectedHash, String hashFound) {
-			this.expectedHash = expectedHash;
-			this.hashFound = hashFound;
+					// The server jar is identified by its (verified) hash; the launcher jar is identified by its size and
+					// modification time, rather than hashing it on every start
+					String indexKey = bytesToHex(serverJarHash) + ";" + VERSION + ";" + Files.size(launcherJar) + ";"
+						+ Files.getLastModifiedTime(launcherJar).toMillis();
+					GameClassLoader loader = new GameClassLoader(new Path[] {serverJar, launcherJar}, parent, indexFile, indexKey);
+
+					if (Boolean.parseBoolean(props.getProperty("classloader.stats", "false"))) {
+						Runtime.getRuntime().addShutdownHook(new Thread(() -> System.out.println(loader.describeStats())));
+					}
+
+					return loader;
+				}
+			} catch (URISyntaxException | IOException | IllegalArgumentException e) {
+				System.err.println("Failed to create indexed game classloader, falling back to URLClassLoader:");
+				e.printStackTrace();
+			}
 		}
+
+		return new URLClassLoader(new URL[] {
+				serverJarFileUrl,
+				launcherJarUrl
+		}, parent);
 	}
 
-	private static void verifyMinecraftJar(Path serverJar, byte[] serverJarHash) throws IOException {
-		MessageDigest digest;
+	static void verifyMinecraftJar(Path serverJar, byte[] serverJarHash, boolean force) throws IOException {
+		JarVerifier.verify(serverJar, serverJarHash, force);
+	}
 
+	private static boolean isMinecraftJarValid(Path serverJar, byte[] serverJarHash) {
 		try {
-			digest = MessageDigest.getInstance("SHA-1");
-		} catch (NoSuchAlgorithmException e) {
-			throw new RuntimeException("Failed to verify Minecraft server JAR", e);
+			verifyMinecraftJar(serverJar, serverJarHash, false);
+			return true;
+		} catch (IOException e) {
+			return false;
 		}
+	}
 
-		// TODO: change to a stream?
-		byte[] foundHash = digest.digest(Files.readAllBytes(serverJar));
+	private static boolean downloadMinecraftJar(JarDownloader downloader, JarStore store, Path serverJar, byte[] serverJarHash) {
+		for (int i = 0; i < MAX_DOWNLOAD_TRIES; i++) {
+			try {
+				downloader.download();
 
-		if (!Arrays.equals(foundHash, serverJarHash)) {
-			throw new InvalidHashException(bytesToHex(serverJarHash), bytesToHex(foundHash));
+				if (store != null && !store.linkInto(serverJarHash, serverJar, false)) {
+					throw new IOException("Downloaded jar is missing from the jar store");
+				}
+
+				System.out.println("Successfully downloaded Minecraft jar!");
+				return true;
+			} catch (InvalidHashException e) {
+				System.err.println("Downloaded Minecraft jar has invalid hash (expected " + e.expectedHash + ", found "
+						+ e.hashFound + ")");
+			} catch (IOException e) {
+				System.err.println("Download failed!");
+				e.printStackTrace();
+			}
+
+			if (i < MAX_DOWNLOAD_TRIES - 1) {
+				System.out.println("Retrying... (" + (i + 1) + "/" + (MAX_DOWNLOAD_TRIES - 1) + ")");
+			}
 		}
+
+		return false;
 	}
 
-	private static void downloadMinecraftJar(URL serverJarUrl, Path serverJar) throws IOException {
-		Files.createDirectories(serverJar.getParent());
+	/**
+	 * Gets the list of URLs to download the server jar from: any configured mirrors, followed by the upstream URL.
+	 */
+	private static List<URL> getMirrorUrls(Properties props, URL serverJarUrl) {
+		// Keyed by string, as URL.equals does name resolution
+		Map<String, URL> urls = new LinkedHashMap<>();
+		String mirrors = props.getProperty("serverJarMirrors", "");
+
+		for (String mirror : mirrors.split(",")) {
+			if (mirror.trim().isEmpty()) continue;
+
+			try {
+				URL url = new URI(mirror.trim()).toURL();
+				urls.putIfAbsent(url.toString(), url);
+			} catch (MalformedURLException | URISyntaxException | IllegalArgumentException e) {
+				System.err.println("Ignoring invalid mirror URL in serverJarMirrors: " + mirror.trim());
+			}
+		}
+
+		urls.putIfAbsent(serverJarUrl.toString(), serverJarUrl);
+		return new ArrayList<>(urls.values());
+	}
+
+	/**
+	 * Gets a size in bytes, which can have a K, M or G suffix.
+	 */
+	static long getSizeProperty(Properties props, String key, long defaultValue) {
+		String value = props.getProperty(key);
+		if (value == null || value.trim().isEmpty()) return defaultValue;
+		String number = value.trim().toUpperCase(Locale.ROOT);
+		long multiplier = 1;
+
+		if (number.endsWith("K")) {
+			multiplier = 1024;
+		} else if (number.endsWith("M")) {
+			multiplier = 1024 * 1024;
+		} else if (number.endsWith("G")) {
+			multiplier = 1024 * 1024 * 1024;
+		}
+
+		if (multiplier != 1) {
+			number = number.substring(0, number.length() - 1).trim();
+		}
+
+		try {
+			return Long.parseLong(number) * multiplier;
+		} catch (NumberFormatException e) {
+			System.err.println("Invalid value of " + key + ": " + value + ", using default of " + defaultValue);
+			return defaultValue;
+		}
+	}
 
-		URLConnection conn = serverJarUrl.openConnection();
-		conn.setRequestProperty("User-Agent", USER_AGENT);
-		conn.setRequestProperty("Accept", "application/octet-stream");
-		// 2 minute read/connect timeouts
-		conn.setConnectTimeout(2 * 60 * 1000);
-		conn.setReadTimeout(2 * 60 * 1000);
+	static int getIntProperty(Properties props, String key, int defaultValue) {
+		String value = props.getProperty(key);
+		if (value == null) return defaultValue;
 
-		try (InputStream in = conn.getInputStream()) {
-			Files.copy(in, serverJar, StandardCopyOption.REPLACE_EXISTING);
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException e) {
+			System.err.println("Invalid value of " + key + ": " + value + ", using default of " + defaultValue);
+			return defaultValue;
 		}
 	}
 
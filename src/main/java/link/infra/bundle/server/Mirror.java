@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) 2020 comp500
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package link.infra.bundle.server;
+
+import java.net.URL;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A URL the server jar can be downloaded from, with statistics on how it has performed.
+ */
+final class Mirror {
+	final URL url;
+	// Time taken to respond to the probe request, or -1 if it wasn't probed or didn't respond
+	volatile long latencyMillis = -1;
+	volatile boolean supportsRanges = false;
+	volatile long reportedLength = -1;
+
+	private final AtomicLong bytes = new AtomicLong();
+	private final AtomicLong nanos = new AtomicLong();
+	private final AtomicInteger failures = new AtomicInteger();
+
+	Mirror(URL url) {
+		this.url = url;
+	}
+
+	void recordTransfer(long transferredBytes, long elapsedNanos) {
+		bytes.addAndGet(transferredBytes);
+		nanos.addAndGet(elapsedNanos);
+	}
+
+	void recordFailure() {
+		failures.incrementAndGet();
+	}
+
+	String describeStats() {
+		long totalBytes = bytes.get();
+		double seconds = nanos.get() / 1e9;
+		// Time is summed over all connections to the mirror, so this is the average throughput of one connection
+		String throughput = seconds > 0 ? String.format("%.2f MB/s per connection", totalBytes / seconds / (1024 * 1024)) : "n/a";
+		String latency = latencyMillis >= 0 ? latencyMillis + " ms" : "n/a";
+		return String.format("%s: %d bytes, %s, latency %s, %d failures", url, totalBytes, throughput, latency, failures.get());
+	}
+}
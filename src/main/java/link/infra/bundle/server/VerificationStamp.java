@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2020 comp500
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package link.infra.bundle.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A sidecar file stored next to the server jar, recording the file attributes the jar had when it was last fully
+ * hashed. If the attributes still match on the next start, the jar has not been touched and the hash can be skipped.
+ */
+final class VerificationStamp {
+	private static final String SUFFIX = ".stamp";
+
+	private final long size;
+	private final long modifiedTime;
+	private final String fileKey;
+	private final String hash;
+
+	private VerificationStamp(long size, long modifiedTime, String fileKey, String hash) {
+		this.size = size;
+		this.modifiedTime = modifiedTime;
+		this.fileKey = fileKey;
+		this.hash = hash;
+	}
+
+	static VerificationStamp of(BasicFileAttributes attrs, byte[] hash) {
+		return new VerificationStamp(attrs.size(), attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS),
+			String.valueOf(attrs.fileKey()), Main.bytesToHex(hash));
+	}
+
+	static Path pathFor(Path serverJar) {
+		return serverJar.resolveSibling(serverJar.getFileName() + SUFFIX);
+	}
+
+	/**
+	 * Reads the stamp for the given jar, returning null if there is no stamp or it can't be read.
+	 */
+	static VerificationStamp read(Path serverJar) {
+		Properties props = new Properties();
+
+		try (InputStream is = Files.newInputStream(pathFor(serverJar))) {
+			props.load(is);
+			return new VerificationStamp(Long.parseLong(props.getProperty("size")),
+				Long.parseLong(props.getProperty("modifiedTime")),
+				props.getProperty("fileKey"), props.getProperty("hash"));
+		} catch (NoSuchFileException e) {
+			return null;
+		} catch (IOException | NumberFormatException e) {
+			System.out.println("Ignoring unreadable verification stamp for " + serverJar);
+			return null;
+		}
+	}
+
+	static void delete(Path serverJar) {
+		try {
+			Files.deleteIfExists(pathFor(serverJar));
+		} catch (IOException e) {
+			System.err.println("Failed to delete verification stamp for " + serverJar);
+		}
+	}
+
+	void write(Path serverJar) {
+		Properties props = new Properties();
+		props.setProperty("size", Long.toString(size));
+		props.setProperty("modifiedTime", Long.toString(modifiedTime));
+		props.setProperty("fileKey", fileKey);
+		props.setProperty("hash", hash);
+
+		Path stampPath = pathFor(serverJar);
+
+		// Not fatal - the jar just gets hashed again next time
+		try {
+			// Written to a temporary file then moved, as other launchers sharing the jar may read it at any time
+			Path tempPath = Files.createTempFile(stampPath.toAbsolutePath().getParent(), stampPath.getFileName().toString(), ".tmp");
+
+			try (OutputStream os = Files.newOutputStream(tempPath)) {
+				props.store(os, "Bundle server launcher verification stamp - Delete this file to force the server jar to be re-hashed");
+			}
+
+			try {
+				Files.move(tempPath, stampPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tempPath, stampPath, StandardCopyOption.REPLACE_EXISTING);
+			} finally {
+				Files.deleteIfExists(tempPath);
+			}
+		} catch (IOException e) {
+			System.err.println("Failed to save verification stamp for " + serverJar + ":");
+			e.printStackTrace();
+		}
+	}
+
+	byte[] getHash() {
+		return Main.hexToBytes(hash);
+	}
+
+	boolean matches(BasicFileAttributes attrs, byte[] expectedHash) {
+		return size == attrs.size()
+			&& modifiedTime == attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS)
+			&& fileKey.equals(String.valueOf(attrs.fileKey()))
+			&& Arrays.equals(getHash(), expectedHash);
+	}
+}